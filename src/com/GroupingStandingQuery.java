@@ -0,0 +1,51 @@
+package com;
+
+import com.query.StandingQuery;
+
+import java.util.Arrays;
+
+/**
+ * Base for standing queries that group matching log entries by one field (ip, user, event, status or
+ * task) after an optional event and status filter.
+ */
+public abstract class GroupingStandingQuery implements StandingQuery {
+    private String field;
+    private Event event;
+    private Status status;
+
+    /**
+     * @param field  the field to group by: ip, user, event, status or task
+     * @param event  the event to count, or {@code null} for any event
+     * @param status the status to count, or {@code null} for any status
+     */
+    protected GroupingStandingQuery(String field, Event event, Status status) {
+        if (!Arrays.asList("ip", "user", "event", "status", "task").contains(field)) {
+            throw new IllegalArgumentException("Unknown field: " + field);
+        }
+        this.field = field;
+        this.event = event;
+        this.status = status;
+    }
+
+    /**
+     * Returns the group key of an entry, or {@code null} if the entry does not pass the filter or, when
+     * grouping by task, has no task.
+     */
+    protected Object keyOf(String ip, String user, Event event, int eventAdditionalParameter, Status status) {
+        if ((this.event != null && !this.event.equals(event)) || (this.status != null && !this.status.equals(status))) {
+            return null;
+        }
+        switch (field) {
+            case "ip":
+                return ip;
+            case "user":
+                return user;
+            case "event":
+                return event;
+            case "status":
+                return status;
+            default:
+                return eventAdditionalParameter == -1 ? null : eventAdditionalParameter;
+        }
+    }
+}
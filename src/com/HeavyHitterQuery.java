@@ -0,0 +1,42 @@
+package com;
+
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * Standing query that tracks the most frequent keys (ip, user, event, status or task) among matching
+ * log entries as they are ingested, e.g. "top IPs by FAILED count". Backed by a {@link SpaceSavingSketch},
+ * so memory stays bounded by {@code capacity} however many distinct keys arrive.
+ */
+public class HeavyHitterQuery extends GroupingStandingQuery {
+    private SpaceSavingSketch<Object> sketch;
+
+    public HeavyHitterQuery(String field, Event event, Status status, int capacity) {
+        super(field, event, status);
+        sketch = new SpaceSavingSketch<>(capacity);
+    }
+
+    @Override
+    public void onLogEntry(String ip, String user, Date date, Event event, int eventAdditionalParameter, Status status) {
+        Object key = keyOf(ip, user, event, eventAdditionalParameter, status);
+        if (key != null) {
+            synchronized (this) {
+                sketch.offer(key);
+            }
+        }
+    }
+
+    /**
+     * Top keys by counter; counts are upper bounds of the true counts.
+     */
+    public synchronized Map<Object, Long> getTop(int k) {
+        return sketch.getTop(k);
+    }
+
+    /**
+     * Top keys by guaranteed count; counts are lower bounds of the true counts.
+     */
+    public synchronized Map<Object, Long> getGuaranteedTop(int k) {
+        return sketch.getGuaranteedTop(k);
+    }
+}
@@ -12,15 +12,26 @@ import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
-public class LogParser implements IPQuery, UserQuery, DateQuery, EventQuery, QLQuery {
+public class LogParser implements IPQuery, UserQuery, DateQuery, EventQuery, QLQuery, TopKQuery, FunnelQuery {
+    private static final int SEGMENT_SIZE = 4096;
+    private static final int APPROXIMATE_CAPACITY_FACTOR = 10;
+
     private Path logDir;
-    private List<LogEntity> logEntities = new ArrayList<>();
-    private DateFormat simpleDateFormat = new SimpleDateFormat("d.M.yyyy H:m:s");
+    private List<Segment> segments = new CopyOnWriteArrayList<>();
+    private List<StandingQuery> standingQueries = new CopyOnWriteArrayList<>();
+    private AtomicLong scannedSegments = new AtomicLong();
+    private AtomicLong skippedSegments = new AtomicLong();
+    private volatile boolean segmentSkipping = true;
+    private ThreadLocal<DateFormat> simpleDateFormat = ThreadLocal.withInitial(() -> new SimpleDateFormat("d.M.yyyy H:m:s"));
 
     public LogParser(Path logDir) {
         this.logDir = logDir;
@@ -41,20 +52,86 @@ public class LogParser implements IPQuery, UserQuery, DateQuery, EventQuery, QLQ
 
     @Override
     public Set<String> getIPsForUser(String user, Date after, Date before) {
-        return dateStream(after, before)
+        return dateStream(after, before, s -> s.mayContainUser(user))
                 .filter(e -> e.getUser().equals(user))
                 .map(LogEntity::getIp)
                 .collect(Collectors.toSet());
     }
 
+    /**
+     * Registers a query that is updated with every log line added from now on; lines read before
+     * registration are not replayed.
+     */
+    public void addStandingQuery(StandingQuery standingQuery) {
+        standingQueries.add(standingQuery);
+    }
+
+    public void removeStandingQuery(StandingQuery standingQuery) {
+        standingQueries.remove(standingQuery);
+    }
+
+    /**
+     * Parses a single log line and appends it, updating segment metadata and all standing queries.
+     * Lines that do not have the five tab-separated fields, or whose date or task number does not parse,
+     * are ignored. Safe to call while other threads
+     * run queries; a query sees the rows that were appended before it reached their segment.
+     */
+    public void addLogLine(String line) {
+        LogEntity logEntity = readLogEntity(line);
+        if (logEntity != null) {
+            addLogEntity(logEntity);
+        }
+    }
+
     private Stream<LogEntity> dateStream(Date after, Date before) {
-        return logEntities.stream()
+        return dateStream(after, before, s -> true);
+    }
+
+    private Stream<LogEntity> dateStream(Date after, Date before, Predicate<Segment> segmentFilter) {
+        return segmentStream(after, before, segmentFilter)
+                .flatMap(s -> s.getLogEntities().stream())
                 .filter(e -> dateBetweenDates(e.getDate(), after, before));
     }
 
+    private Stream<Segment> segmentStream(Date after, Date before, Predicate<Segment> segmentFilter) {
+        return segments.stream()
+                .filter(s -> {
+                    // reading the size first makes the metadata of every row below it visible
+                    boolean matches = s.size() > 0
+                            && (!segmentSkipping || (s.mayContainDates(after, before) && segmentFilter.test(s)));
+                    (matches ? scannedSegments : skippedSegments).incrementAndGet();
+                    return matches;
+                });
+    }
+
+    private Stream<LogEntity> allEntities() {
+        return segments.stream().flatMap(s -> s.getLogEntities().stream());
+    }
+
+    public long getScannedSegments() {
+        return scannedSegments.get();
+    }
+
+    public long getSkippedSegments() {
+        return skippedSegments.get();
+    }
+
+    /**
+     * Turns consulting segment metadata on or off; with skipping off every query scans all rows.
+     */
+    public void setSegmentSkipping(boolean segmentSkipping) {
+        this.segmentSkipping = segmentSkipping;
+    }
+
+    public double getSegmentSkipRate() {
+        long skipped = skippedSegments.get();
+        long total = skipped + scannedSegments.get();
+        return total == 0 ? 0 : (double) skipped / total;
+    }
+
     @Override
     public Set<String> getIPsForEvent(Event event, Date after, Date before) {
-        return dateStream(after, before)
+        return dateStream(after, before, s -> s.containsEvent(event))
                 .filter(e -> e.getEvent().equals(event))
                 .map(LogEntity::getIp)
                 .collect(Collectors.toSet());
@@ -62,7 +139,7 @@ public class LogParser implements IPQuery, UserQuery, DateQuery, EventQuery, QLQ
 
     @Override
     public Set<String> getIPsForStatus(Status status, Date after, Date before) {
-        return dateStream(after, before)
+        return dateStream(after, before, s -> s.containsStatus(status))
                 .filter(e -> e.getStatus().equals(status))
                 .map(LogEntity::getIp)
                 .collect(Collectors.toSet());
@@ -70,7 +147,7 @@ public class LogParser implements IPQuery, UserQuery, DateQuery, EventQuery, QLQ
 
     @Override
     public Set<String> getAllUsers() {
-        return logEntities.stream().map(LogEntity::getUser).collect(Collectors.toSet());
+        return allEntities().map(LogEntity::getUser).collect(Collectors.toSet());
     }
 
     @Override
@@ -82,7 +159,7 @@ public class LogParser implements IPQuery, UserQuery, DateQuery, EventQuery, QLQ
 
     @Override
     public int getNumberOfUserEvents(String user, Date after, Date before) {
-        return dateStream(after, before)
+        return dateStream(after, before, s -> s.mayContainUser(user))
                 .filter(u -> u.getUser().equals(user))
                 .map(LogEntity::getEvent)
                 .collect(Collectors.toSet()).size();
@@ -90,7 +167,7 @@ public class LogParser implements IPQuery, UserQuery, DateQuery, EventQuery, QLQ
 
     @Override
     public Set<String> getUsersForIP(String ip, Date after, Date before) {
-        return dateStream(after, before)
+        return dateStream(after, before, s -> s.mayContainIp(ip))
                 .filter(e -> e.getIp().equals(ip))
                 .map(LogEntity::getUser)
                 .collect(Collectors.toSet());
@@ -98,7 +175,7 @@ public class LogParser implements IPQuery, UserQuery, DateQuery, EventQuery, QLQ
 
     @Override
     public Set<String> getLoggedUsers(Date after, Date before) {
-        return dateStream(after, before)
+        return dateStream(after, before, s -> s.containsEvent(Event.LOGIN))
                 .filter(e -> e.getEvent().equals(Event.LOGIN))
                 .map(LogEntity::getUser)
                 .collect(Collectors.toSet());
@@ -106,7 +183,7 @@ public class LogParser implements IPQuery, UserQuery, DateQuery, EventQuery, QLQ
 
     @Override
     public Set<String> getDownloadedPluginUsers(Date after, Date before) {
-        return dateStream(after, before)
+        return dateStream(after, before, s -> s.containsEvent(Event.DOWNLOAD_PLUGIN))
                 .filter(e -> e.getEvent().equals(Event.DOWNLOAD_PLUGIN))
                 .map(LogEntity::getUser)
                 .collect(Collectors.toSet());
@@ -114,7 +191,7 @@ public class LogParser implements IPQuery, UserQuery, DateQuery, EventQuery, QLQ
 
     @Override
     public Set<String> getWroteMessageUsers(Date after, Date before) {
-        return dateStream(after, before)
+        return dateStream(after, before, s -> s.containsEvent(Event.WRITE_MESSAGE))
                 .filter(e -> e.getEvent().equals(Event.WRITE_MESSAGE))
                 .map(LogEntity::getUser)
                 .collect(Collectors.toSet());
@@ -122,7 +199,7 @@ public class LogParser implements IPQuery, UserQuery, DateQuery, EventQuery, QLQ
 
     @Override
     public Set<String> getSolvedTaskUsers(Date after, Date before) {
-        return dateStream(after, before)
+        return dateStream(after, before, s -> s.containsEvent(Event.SOLVE_TASK))
                 .filter(e -> e.getEvent().equals(Event.SOLVE_TASK))
                 .map(LogEntity::getUser)
                 .collect(Collectors.toSet());
@@ -130,7 +207,7 @@ public class LogParser implements IPQuery, UserQuery, DateQuery, EventQuery, QLQ
 
     @Override
     public Set<String> getSolvedTaskUsers(Date after, Date before, int task) {
-        return dateStream(after, before)
+        return dateStream(after, before, s -> s.containsEvent(Event.SOLVE_TASK) && s.containsTask(task))
                 .filter(e -> e.getEvent().equals(Event.SOLVE_TASK))
                 .filter(e -> e.getEventAdditionalParameter() == task)
                 .map(LogEntity::getUser)
@@ -139,7 +216,7 @@ public class LogParser implements IPQuery, UserQuery, DateQuery, EventQuery, QLQ
 
     @Override
     public Set<String> getDoneTaskUsers(Date after, Date before) {
-        return dateStream(after, before)
+        return dateStream(after, before, s -> s.containsEvent(Event.DONE_TASK))
                 .filter(e -> e.getEvent().equals(Event.DONE_TASK))
                 .map(LogEntity::getUser)
                 .collect(Collectors.toSet());
@@ -147,7 +224,7 @@ public class LogParser implements IPQuery, UserQuery, DateQuery, EventQuery, QLQ
 
     @Override
     public Set<String> getDoneTaskUsers(Date after, Date before, int task) {
-        return dateStream(after, before)
+        return dateStream(after, before, s -> s.containsEvent(Event.DONE_TASK) && s.containsTask(task))
                 .filter(e -> e.getEvent().equals(Event.DONE_TASK))
                 .filter(e -> e.getEventAdditionalParameter() == task)
                 .map(LogEntity::getUser)
@@ -156,7 +233,7 @@ public class LogParser implements IPQuery, UserQuery, DateQuery, EventQuery, QLQ
 
     @Override
     public Set<Date> getDatesForUserAndEvent(String user, Event event, Date after, Date before) {
-        return dateStream(after, before)
+        return dateStream(after, before, s -> s.containsEvent(event) && s.mayContainUser(user))
                 .filter(e -> e.getEvent().equals(event))
                 .filter(e -> e.getUser().equals(user))
                 .map(LogEntity::getDate)
@@ -165,7 +242,7 @@ public class LogParser implements IPQuery, UserQuery, DateQuery, EventQuery, QLQ
 
     @Override
     public Set<Date> getDatesWhenSomethingFailed(Date after, Date before) {
-        return dateStream(after, before)
+        return dateStream(after, before, s -> s.containsStatus(Status.FAILED))
                 .filter(e -> e.getStatus().equals(Status.FAILED))
                 .map(LogEntity::getDate)
                 .collect(Collectors.toSet());
@@ -174,7 +251,7 @@ public class LogParser implements IPQuery, UserQuery, DateQuery, EventQuery, QLQ
 
     @Override
     public Set<Date> getDatesWhenErrorHappened(Date after, Date before) {
-        return dateStream(after, before)
+        return dateStream(after, before, s -> s.containsStatus(Status.ERROR))
                 .filter(e -> e.getStatus().equals(Status.ERROR))
                 .map(LogEntity::getDate)
                 .collect(Collectors.toSet());
@@ -182,7 +259,7 @@ public class LogParser implements IPQuery, UserQuery, DateQuery, EventQuery, QLQ
 
     @Override
     public Date getDateWhenUserLoggedFirstTime(String user, Date after, Date before) {
-        return dateStream(after, before)
+        return dateStream(after, before, s -> s.containsEvent(Event.LOGIN) && s.mayContainUser(user))
                 .filter(e -> e.getEvent().equals(Event.LOGIN))
                 .filter(e -> e.getUser().equals(user))
                 .map(LogEntity::getDate)
@@ -193,7 +270,7 @@ public class LogParser implements IPQuery, UserQuery, DateQuery, EventQuery, QLQ
 
     @Override
     public Date getDateWhenUserSolvedTask(String user, int task, Date after, Date before) {
-        return dateStream(after, before)
+        return dateStream(after, before, s -> s.containsEvent(Event.SOLVE_TASK) && s.containsTask(task) && s.mayContainUser(user))
                 .filter(e -> e.getUser().equals(user))
                 .filter(e -> e.getEvent().equals(Event.SOLVE_TASK))
                 .filter(e -> e.getEventAdditionalParameter() == task)
@@ -204,7 +281,7 @@ public class LogParser implements IPQuery, UserQuery, DateQuery, EventQuery, QLQ
 
     @Override
     public Date getDateWhenUserDoneTask(String user, int task, Date after, Date before) {
-        return dateStream(after, before)
+        return dateStream(after, before, s -> s.containsEvent(Event.DONE_TASK) && s.containsTask(task) && s.mayContainUser(user))
                 .filter(e -> e.getUser().equals(user))
                 .filter(e -> e.getEvent().equals(Event.DONE_TASK))
                 .filter(e -> e.getEventAdditionalParameter() == task)
@@ -215,7 +292,7 @@ public class LogParser implements IPQuery, UserQuery, DateQuery, EventQuery, QLQ
 
     @Override
     public Set<Date> getDatesWhenUserWroteMessage(String user, Date after, Date before) {
-        return dateStream(after, before)
+        return dateStream(after, before, s -> s.containsEvent(Event.WRITE_MESSAGE) && s.mayContainUser(user))
                 .filter(e -> e.getUser().equals(user))
                 .filter(e -> e.getEvent().equals(Event.WRITE_MESSAGE))
                 .map(LogEntity::getDate)
@@ -224,7 +301,7 @@ public class LogParser implements IPQuery, UserQuery, DateQuery, EventQuery, QLQ
 
     @Override
     public Set<Date> getDatesWhenUserDownloadedPlugin(String user, Date after, Date before) {
-        return dateStream(after, before)
+        return dateStream(after, before, s -> s.containsEvent(Event.DOWNLOAD_PLUGIN) && s.mayContainUser(user))
                 .filter(e -> e.getUser().equals(user))
                 .filter(e -> e.getEvent().equals(Event.DOWNLOAD_PLUGIN))
                 .map(LogEntity::getDate)
@@ -245,7 +322,7 @@ public class LogParser implements IPQuery, UserQuery, DateQuery, EventQuery, QLQ
 
     @Override
     public Set<Event> getEventsForIP(String ip, Date after, Date before) {
-        return dateStream(after, before)
+        return dateStream(after, before, s -> s.mayContainIp(ip))
                 .filter(e -> e.getIp().equals(ip))
                 .map(LogEntity::getEvent)
                 .collect(Collectors.toSet());
@@ -253,7 +330,7 @@ public class LogParser implements IPQuery, UserQuery, DateQuery, EventQuery, QLQ
 
     @Override
     public Set<Event> getEventsForUser(String user, Date after, Date before) {
-        return dateStream(after, before)
+        return dateStream(after, before, s -> s.mayContainUser(user))
                 .filter(e -> e.getUser().equals(user))
                 .map(LogEntity::getEvent)
                 .collect(Collectors.toSet());
@@ -261,7 +338,7 @@ public class LogParser implements IPQuery, UserQuery, DateQuery, EventQuery, QLQ
 
     @Override
     public Set<Event> getFailedEvents(Date after, Date before) {
-        return dateStream(after, before)
+        return dateStream(after, before, s -> s.containsStatus(Status.FAILED))
                 .filter(e -> e.getStatus().equals(Status.FAILED))
                 .map(LogEntity::getEvent)
                 .collect(Collectors.toSet());
@@ -269,7 +346,7 @@ public class LogParser implements IPQuery, UserQuery, DateQuery, EventQuery, QLQ
 
     @Override
     public Set<Event> getErrorEvents(Date after, Date before) {
-        return dateStream(after, before)
+        return dateStream(after, before, s -> s.containsStatus(Status.ERROR))
                 .filter(e -> e.getStatus().equals(Status.ERROR))
                 .map(LogEntity::getEvent)
                 .collect(Collectors.toSet());
@@ -277,7 +354,7 @@ public class LogParser implements IPQuery, UserQuery, DateQuery, EventQuery, QLQ
 
     @Override
     public int getNumberOfAttemptToSolveTask(int task, Date after, Date before) {
-        return (int) dateStream(after, before)
+        return (int) dateStream(after, before, s -> s.containsEvent(Event.SOLVE_TASK) && s.containsTask(task))
                 .filter(e -> e.getEventAdditionalParameter() == task)
                 .filter(e -> e.getEvent().equals(Event.SOLVE_TASK))
                 .count();
@@ -285,7 +362,7 @@ public class LogParser implements IPQuery, UserQuery, DateQuery, EventQuery, QLQ
 
     @Override
     public int getNumberOfSuccessfulAttemptToSolveTask(int task, Date after, Date before) {
-        return (int) dateStream(after, before)
+        return (int) dateStream(after, before, s -> s.containsEvent(Event.DONE_TASK) && s.containsTask(task))
                 .filter(e -> e.getEventAdditionalParameter() == task)
                 .filter(e -> e.getEvent().equals(Event.DONE_TASK))
                 .count();
@@ -294,7 +371,7 @@ public class LogParser implements IPQuery, UserQuery, DateQuery, EventQuery, QLQ
     @Override
     public Map<Integer, Integer> getAllSolvedTasksAndTheirNumber(Date after, Date before) {
         Map<Integer, Integer> map = new HashMap<>();
-        dateStream(after, before)
+        dateStream(after, before, s -> s.containsEvent(Event.SOLVE_TASK))
                 .filter(e -> e.getEvent().equals(Event.SOLVE_TASK))
                 .map(LogEntity::getEventAdditionalParameter)
                 .distinct()
@@ -305,7 +382,7 @@ public class LogParser implements IPQuery, UserQuery, DateQuery, EventQuery, QLQ
     @Override
     public Map<Integer, Integer> getAllDoneTasksAndTheirNumber(Date after, Date before) {
         Map<Integer, Integer> map = new HashMap<>();
-        dateStream(after, before)
+        dateStream(after, before, s -> s.containsEvent(Event.DONE_TASK))
                 .filter(e -> e.getEvent().equals(Event.DONE_TASK))
                 .map(LogEntity::getEventAdditionalParameter)
                 .distinct()
@@ -313,8 +390,148 @@ public class LogParser implements IPQuery, UserQuery, DateQuery, EventQuery, QLQ
         return map;
     }
 
+    @Override
+    public Map<String, Integer> getTopIPs(int k, Event event, Status status, Date after, Date before) {
+        return topK(k, topKStream(event, status, after, before)
+                .map(LogEntity::getIp));
+    }
+
+    @Override
+    public Map<String, Integer> getTopUsers(int k, Event event, Status status, Date after, Date before) {
+        return topK(k, topKStream(event, status, after, before)
+                .map(LogEntity::getUser));
+    }
+
+    @Override
+    public Map<Integer, Integer> getTopTasks(int k, Event event, Status status, Date after, Date before) {
+        return topK(k, topKStream(event, status, after, before)
+                .filter(e -> e.getEventAdditionalParameter() != -1)
+                .map(LogEntity::getEventAdditionalParameter));
+    }
+
+    @Override
+    public Map<String, Integer> getApproximateTopIPs(int k, int capacity, Event event, Status status, Date after, Date before) {
+        return approximateTopK(k, capacity, topKStream(event, status, after, before)
+                .map(LogEntity::getIp));
+    }
+
+    @Override
+    public Map<String, Integer> getApproximateTopUsers(int k, int capacity, Event event, Status status, Date after, Date before) {
+        return approximateTopK(k, capacity, topKStream(event, status, after, before)
+                .map(LogEntity::getUser));
+    }
+
+    @Override
+    public Map<Integer, Integer> getApproximateTopTasks(int k, int capacity, Event event, Status status, Date after, Date before) {
+        return approximateTopK(k, capacity, topKStream(event, status, after, before)
+                .filter(e -> e.getEventAdditionalParameter() != -1)
+                .map(LogEntity::getEventAdditionalParameter));
+    }
+
+    private Stream<LogEntity> topKStream(Event event, Status status, Date after, Date before) {
+        return dateStream(after, before, s -> (event == null || s.containsEvent(event))
+                && (status == null || s.containsStatus(status)))
+                .filter(e -> event == null || event.equals(e.getEvent()))
+                .filter(e -> status == null || status.equals(e.getStatus()));
+    }
+
+    /**
+     * Counts keys in a single pass and keeps the k largest counters in a min-heap, returning them
+     * ordered from the most to the least frequent.
+     */
+    private <K> Map<K, Integer> topK(int k, Stream<K> keys) {
+        Map<K, Integer> top = new LinkedHashMap<>();
+        if (k <= 0) {
+            return top;
+        }
+        Map<K, int[]> counters = new HashMap<>();
+        keys.forEach(key -> counters.computeIfAbsent(key, c -> new int[1])[0]++);
+
+        PriorityQueue<Map.Entry<K, int[]>> heap = new PriorityQueue<>(Comparator.comparingInt(e -> e.getValue()[0]));
+        for (Map.Entry<K, int[]> counter : counters.entrySet()) {
+            if (heap.size() < k) {
+                heap.add(counter);
+            } else if (counter.getValue()[0] > heap.peek().getValue()[0]) {
+                heap.poll();
+                heap.add(counter);
+            }
+        }
+        Deque<Map.Entry<K, int[]>> descending = new ArrayDeque<>();
+        while (!heap.isEmpty()) {
+            descending.push(heap.poll());
+        }
+        for (Map.Entry<K, int[]> counter : descending) {
+            top.put(counter.getKey(), counter.getValue()[0]);
+        }
+        return top;
+    }
+
+    private <K> Map<K, Integer> approximateTopK(int k, int capacity, Stream<K> keys) {
+        Map<K, Integer> top = new LinkedHashMap<>();
+        if (k <= 0) {
+            return top;
+        }
+        SpaceSavingSketch<K> sketch = new SpaceSavingSketch<>(capacity);
+        keys.forEachOrdered(sketch::offer);
+        for (Map.Entry<K, Long> counter : sketch.getGuaranteedTop(k).entrySet()) {
+            top.put(counter.getKey(), (int) Math.min(Integer.MAX_VALUE, counter.getValue()));
+        }
+        return top;
+    }
+
+    @Override
+    public Map<Integer, TaskFunnel> getTaskFunnels(Date after, Date before) {
+        FunnelState funnelState = new FunnelState();
+        forEachInTimeOrder(after, before, s -> s.containsEvent(Event.SOLVE_TASK) || s.containsEvent(Event.DONE_TASK),
+                e -> Event.SOLVE_TASK.equals(e.getEvent()) || Event.DONE_TASK.equals(e.getEvent()), funnelState::add);
+        return funnelState.getTaskFunnels();
+    }
+
+    @Override
+    public TaskFunnel getTaskFunnel(int task, Date after, Date before) {
+        FunnelState funnelState = new FunnelState();
+        forEachInTimeOrder(after, before, s -> (s.containsEvent(Event.SOLVE_TASK) || s.containsEvent(Event.DONE_TASK))
+                && s.containsTask(task), e -> e.getEventAdditionalParameter() == task, funnelState::add);
+        return funnelState.getTaskFunnels().getOrDefault(task, new TaskFunnel(task));
+    }
+
+    /**
+     * Feeds the matching rows of the matching segments to the action in date order, ties broken by
+     * ingestion order. Segments are opened in order of their earliest date and each one is sorted only
+     * while it overlaps the current position, so for time-clustered logs just a few segments are held
+     * sorted at any moment.
+     */
+    private void forEachInTimeOrder(Date after, Date before, Predicate<Segment> segmentFilter,
+                                    Predicate<LogEntity> filter, Consumer<LogEntity> action) {
+        List<SegmentCursor> pending = new ArrayList<>();
+        segmentStream(after, before, segmentFilter)
+                .forEachOrdered(s -> pending.add(new SegmentCursor(s, pending.size())));
+        pending.sort(Comparator.comparingLong(c -> c.minDate));
+
+        PriorityQueue<SegmentCursor> open = new PriorityQueue<>(Comparator.comparingLong(SegmentCursor::currentTime)
+                .thenComparingInt(c -> c.order));
+        int next = 0;
+        while (next < pending.size() || !open.isEmpty()) {
+            if (next < pending.size() && (open.isEmpty() || pending.get(next).minDate <= open.peek().currentTime())) {
+                SegmentCursor cursor = pending.get(next++);
+                if (cursor.open(e -> dateBetweenDates(e.getDate(), after, before) && filter.test(e))) {
+                    open.add(cursor);
+                }
+            } else {
+                SegmentCursor cursor = open.poll();
+                action.accept(cursor.current());
+                if (cursor.advance()) {
+                    open.add(cursor);
+                }
+            }
+        }
+    }
+
     @Override
     public Set<Object> execute(String query) {
+        if (query.startsWith("get top ") || query.startsWith("get approx top ")) {
+            return executeTopK(query);
+        }
         Set<Object> result = new HashSet<>();
         String field1;
         String field2 = null;
@@ -332,37 +549,120 @@ public class LogParser implements IPQuery, UserQuery, DateQuery, EventQuery, QLQ
             value1 = matcher.group(4);
             if (matcher.group(5) != null) {
                 try {
-                    after = simpleDateFormat.parse(matcher.group(6));
-                    before = simpleDateFormat.parse(matcher.group(7));
+                    after = simpleDateFormat.get().parse(matcher.group(6));
+                    before = simpleDateFormat.get().parse(matcher.group(7));
                 } catch (ParseException e) {
                 }
             }
         }
 
         if (field2 != null && value1 != null) {
-            for (int i = 0; i < logEntities.size(); i++) {
-                if (dateBetweenDates(logEntities.get(i).getDate(), after, before)) {
-                    if (field2.equals("date")) {
-                        try {
-                            if (logEntities.get(i).getDate().getTime() == simpleDateFormat.parse(value1).getTime()) {
+            List<Segment> candidates = segmentStream(after, before, segmentFilter(field2, value1))
+                    .collect(Collectors.toList());
+            for (Segment segment : candidates) {
+                List<LogEntity> logEntities = segment.getLogEntities();
+                for (int i = 0; i < logEntities.size(); i++) {
+                    if (dateBetweenDates(logEntities.get(i).getDate(), after, before)) {
+                        if (field2.equals("date")) {
+                            try {
+                                if (logEntities.get(i).getDate().getTime() == simpleDateFormat.get().parse(value1).getTime()) {
+                                    result.add(getCurrentValue(logEntities.get(i), field1));
+                                }
+                            } catch (ParseException e) {
+                            }
+                        } else {
+                            //"get ip for user = \"Eduard Petrovich Morozko\"
+                            if (value1.equals(getCurrentValue(logEntities.get(i), field2).toString())) {
                                 result.add(getCurrentValue(logEntities.get(i), field1));
                             }
-                        } catch (ParseException e) {
-                        }
-                    } else {
-                        //"get ip for user = \"Eduard Petrovich Morozko\"
-                        if (value1.equals(getCurrentValue(logEntities.get(i), field2).toString())) {
-                            result.add(getCurrentValue(logEntities.get(i), field1));
                         }
                     }
                 }
             }
         } else {
-            for (int i = 0; i < logEntities.size(); i++) {
-                result.add(getCurrentValue(logEntities.get(i), field1));
+            allEntities().forEach(e -> result.add(getCurrentValue(e, field1)));
+        }
+
+        return result;
+    }
+
+    //"get top 20 ip for status = \"FAILED\" and date between \"11.12.2013 0:00:00\" and \"03.01.2014 23:59:59\"
+    //"get approx top 20 ip for status = \"FAILED\"
+    private Set<Object> executeTopK(String query) {
+        Set<Object> result = new LinkedHashSet<>();
+        boolean approximate = query.startsWith("get approx top ");
+        if (approximate) {
+            query = "get top " + query.substring("get approx top ".length());
+        }
+        Event event = null;
+        Status status = null;
+        Date after = null;
+        Date before = null;
+        Pattern pattern = Pattern.compile("get top (\\d+) (ip|user|task)"
+                + "( for (event|status) = \"(.*?)\"( and (event|status) = \"(.*?)\")?)?"
+                + "( and date between \"(.*?)\" and \"(.*?)\")?");
+        Matcher matcher = pattern.matcher(query);
+        if (!matcher.matches()) {
+            return result;
+        }
+        int k;
+        try {
+            k = Integer.parseInt(matcher.group(1));
+        } catch (NumberFormatException e) {
+            return result;
+        }
+        String field = matcher.group(2);
+        for (int group = 4; group <= 7; group += 3) {
+            if (matcher.group(group) == null) {
+                continue;
+            }
+            try {
+                if (matcher.group(group).equals("event")) {
+                    event = Event.valueOf(matcher.group(group + 1));
+                } else {
+                    status = Status.valueOf(matcher.group(group + 1));
+                }
+            } catch (IllegalArgumentException e) {
+                return result;
+            }
+        }
+        if (matcher.group(9) != null) {
+            try {
+                after = simpleDateFormat.get().parse(matcher.group(10));
+                before = simpleDateFormat.get().parse(matcher.group(11));
+            } catch (ParseException e) {
             }
         }
 
+        int capacity = (int) Math.min(Integer.MAX_VALUE, (long) k * APPROXIMATE_CAPACITY_FACTOR);
+        Map<?, Integer> top;
+        switch (field) {
+            case "ip":
+                top = approximate ? getApproximateTopIPs(k, capacity, event, status, after, before)
+                        : getTopIPs(k, event, status, after, before);
+                break;
+            case "user":
+                top = approximate ? getApproximateTopUsers(k, capacity, event, status, after, before)
+                        : getTopUsers(k, event, status, after, before);
+                break;
+            default:
+                top = approximate ? getApproximateTopTasks(k, capacity, event, status, after, before)
+                        : getTopTasks(k, event, status, after, before);
+                break;
+        }
+        for (Map.Entry<?, Integer> entry : top.entrySet()) {
+            if (approximate) {
+                // guaranteed counts are lower bounds, shown as "key>=count"
+                result.add(new AbstractMap.SimpleImmutableEntry<Object, Integer>(entry.getKey(), entry.getValue()) {
+                    @Override
+                    public String toString() {
+                        return getKey() + ">=" + getValue();
+                    }
+                });
+            } else {
+                result.add(entry);
+            }
+        }
         return result;
     }
 
@@ -373,24 +673,10 @@ public class LogParser implements IPQuery, UserQuery, DateQuery, EventQuery, QLQ
                     try (BufferedReader reader = new BufferedReader(new FileReader(file.toFile()))) {
                         String line = null;
                         while ((line = reader.readLine()) != null) {
-                            String[] params = line.split("\t");
-
-                            if (params.length != 5) {
-                                continue;
+                            LogEntity logEntity = readLogEntity(line);
+                            if (logEntity != null) {
+                                addLogEntity(logEntity);
                             }
-
-                            String ip = params[0];
-                            String user = params[1];
-                            Date date = readDate(params[2]);
-                            Event event = readEvent(params[3]);
-                            int eventAdditionalParameter = -1;
-                            if (event.equals(Event.SOLVE_TASK) || event.equals(Event.DONE_TASK)) {
-                                eventAdditionalParameter = readAdditionalParameter(params[3]);
-                            }
-                            Status status = readStatus(params[4]);
-
-                            LogEntity logEntity = new LogEntity(ip, user, date, event, eventAdditionalParameter, status);
-                            logEntities.add(logEntity);
                         }
                     }
                 }
@@ -400,10 +686,80 @@ public class LogParser implements IPQuery, UserQuery, DateQuery, EventQuery, QLQ
         }
     }
 
+    private LogEntity readLogEntity(String line) {
+        String[] params = line.split("\t");
+
+        if (params.length != 5) {
+            return null;
+        }
+
+        String ip = params[0];
+        String user = params[1];
+        Date date = readDate(params[2]);
+        if (date == null) {
+            return null;
+        }
+        Event event = readEvent(params[3]);
+        int eventAdditionalParameter = -1;
+        if (Event.SOLVE_TASK.equals(event) || Event.DONE_TASK.equals(event)) {
+            try {
+                eventAdditionalParameter = readAdditionalParameter(params[3]);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        Status status = readStatus(params[4]);
+
+        return new LogEntity(ip, user, date, event, eventAdditionalParameter, status);
+    }
+
+    private synchronized void addLogEntity(LogEntity logEntity) {
+        if (segments.isEmpty() || segments.get(segments.size() - 1).isFull()) {
+            segments.add(new Segment());
+        }
+        segments.get(segments.size() - 1).add(logEntity);
+        for (StandingQuery standingQuery : standingQueries) {
+            try {
+                standingQuery.onLogEntry(logEntity.getIp(), logEntity.getUser(), logEntity.getDate(),
+                        logEntity.getEvent(), logEntity.getEventAdditionalParameter(), logEntity.getStatus());
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private Predicate<Segment> segmentFilter(String field, String value) {
+        switch (field) {
+            case "ip":
+                return s -> s.mayContainIp(value);
+            case "user":
+                return s -> s.mayContainUser(value);
+            case "date": {
+                Date date = readDate(value);
+                return s -> date != null && s.mayContainDate(date);
+            }
+            case "event":
+                for (Event event : Event.values()) {
+                    if (event.toString().equals(value)) {
+                        return s -> s.containsEvent(event);
+                    }
+                }
+                return s -> false;
+            case "status":
+                for (Status status : Status.values()) {
+                    if (status.toString().equals(value)) {
+                        return s -> s.containsStatus(status);
+                    }
+                }
+                return s -> false;
+        }
+        return s -> true;
+    }
+
     private Date readDate(String lineToParse) {
         Date date = null;
         try {
-            date = simpleDateFormat.parse(lineToParse);
+            date = simpleDateFormat.get().parse(lineToParse);
         } catch (ParseException e) {
         }
         return date;
@@ -547,6 +903,216 @@ public class LogParser implements IPQuery, UserQuery, DateQuery, EventQuery, QLQ
         }
     }
 
+    /**
+     * A run of consecutive log entities together with the metadata needed to rule it out of a query
+     * without looking at its rows: the date range, the events and statuses present, the task range and
+     * Bloom filters over users and ips.
+     * <p>
+     * Rows are appended by a single writer at a time into a fixed array; the metadata is updated before
+     * the volatile size is bumped, so a reader that reads the size first sees matching metadata for every
+     * row below it and never sees the array change underneath it.
+     */
+    private class Segment {
+        private LogEntity[] logEntities = new LogEntity[SEGMENT_SIZE];
+        private volatile int size;
+        private long minDate = Long.MAX_VALUE;
+        private long maxDate = Long.MIN_VALUE;
+        private Set<Event> events = EnumSet.noneOf(Event.class);
+        private Set<Status> statuses = EnumSet.noneOf(Status.class);
+        private int minTask = Integer.MAX_VALUE;
+        private int maxTask = Integer.MIN_VALUE;
+        private BloomFilter users = new BloomFilter(SEGMENT_SIZE);
+        private BloomFilter ips = new BloomFilter(SEGMENT_SIZE);
+
+        public void add(LogEntity logEntity) {
+            minDate = Math.min(minDate, logEntity.getDate().getTime());
+            maxDate = Math.max(maxDate, logEntity.getDate().getTime());
+            if (logEntity.getEvent() != null) {
+                events.add(logEntity.getEvent());
+            }
+            if (logEntity.getStatus() != null) {
+                statuses.add(logEntity.getStatus());
+            }
+            if (logEntity.getEventAdditionalParameter() != -1) {
+                minTask = Math.min(minTask, logEntity.getEventAdditionalParameter());
+                maxTask = Math.max(maxTask, logEntity.getEventAdditionalParameter());
+            }
+            users.add(logEntity.getUser());
+            ips.add(logEntity.getIp());
+            logEntities[size] = logEntity;
+            size++;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public long getMinDate() {
+            return minDate;
+        }
+
+        public boolean isFull() {
+            return size >= SEGMENT_SIZE;
+        }
+
+        public List<LogEntity> getLogEntities() {
+            return Arrays.asList(logEntities).subList(0, size);
+        }
+
+        public boolean mayContainDates(Date after, Date before) {
+            if (after == null && before == null) {
+                return true;
+            }
+            long from = after == null ? 0 : after.getTime();
+            long to = before == null ? Long.MAX_VALUE : before.getTime();
+            return maxDate > from && minDate < to;
+        }
+
+        public boolean mayContainDate(Date date) {
+            return date.getTime() >= minDate && date.getTime() <= maxDate;
+        }
+
+        public boolean containsEvent(Event event) {
+            return events.contains(event);
+        }
+
+        public boolean containsStatus(Status status) {
+            return statuses.contains(status);
+        }
+
+        public boolean containsTask(int task) {
+            return task >= minTask && task <= maxTask;
+        }
+
+        public boolean mayContainUser(String user) {
+            return users.mightContain(user);
+        }
+
+        public boolean mayContainIp(String ip) {
+            return ips.mightContain(ip);
+        }
+    }
+
+    /**
+     * Bloom filter over strings sized for the expected number of insertions at 8 bits per element
+     * and 5 probes, which keeps false positives at roughly 2%.
+     */
+    private static class BloomFilter {
+        private static final int BITS_PER_ELEMENT = 8;
+        private static final int PROBES = 5;
+
+        private long[] bits;
+        private int size;
+
+        public BloomFilter(int expectedInsertions) {
+            size = Math.max(64, expectedInsertions * BITS_PER_ELEMENT);
+            bits = new long[(size + 63) / 64];
+        }
+
+        public void add(String value) {
+            if (value == null) {
+                return;
+            }
+            int h1 = value.hashCode();
+            int h2 = secondHash(h1);
+            for (int i = 0; i < PROBES; i++) {
+                int index = Math.floorMod(h1 + i * h2, size);
+                bits[index >>> 6] |= 1L << index;
+            }
+        }
+
+        public boolean mightContain(String value) {
+            if (value == null) {
+                return true;
+            }
+            int h1 = value.hashCode();
+            int h2 = secondHash(h1);
+            for (int i = 0; i < PROBES; i++) {
+                int index = Math.floorMod(h1 + i * h2, size);
+                if ((bits[index >>> 6] & (1L << index)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static int secondHash(int hash) {
+            return (Integer.reverse(hash) * 0x9E3779B9) | 1;
+        }
+    }
+
+    /**
+     * Funnel state for a walk in time order: the per-task results plus the SOLVE_TASK time of every
+     * (user, task) pair that has an open funnel. A pair is dropped as soon as it converts, so memory
+     * is bounded by the number of open pairs rather than every pair ever seen.
+     */
+    private class FunnelState {
+        private Map<Integer, TaskFunnel> funnels = new HashMap<>();
+        private Map<Integer, Map<String, Long>> openFunnels = new HashMap<>();
+
+        public void add(LogEntity logEntity) {
+            int task = logEntity.getEventAdditionalParameter();
+            if (Event.SOLVE_TASK.equals(logEntity.getEvent())) {
+                TaskFunnel funnel = funnels.computeIfAbsent(task, TaskFunnel::new);
+                funnel.recordAttempt();
+                Map<String, Long> users = openFunnels.computeIfAbsent(task, t -> new HashMap<>());
+                if (users.putIfAbsent(logEntity.getUser(), logEntity.getDate().getTime()) == null) {
+                    funnel.recordStart();
+                }
+            } else if (Event.DONE_TASK.equals(logEntity.getEvent())) {
+                TaskFunnel funnel = funnels.computeIfAbsent(task, TaskFunnel::new);
+                funnel.recordCompletion();
+                Map<String, Long> users = openFunnels.get(task);
+                Long solved = users == null ? null : users.remove(logEntity.getUser());
+                if (solved != null) {
+                    funnel.recordConversion(logEntity.getDate().getTime() - solved);
+                    if (users.isEmpty()) {
+                        openFunnels.remove(task);
+                    }
+                }
+            }
+        }
+
+        public Map<Integer, TaskFunnel> getTaskFunnels() {
+            return funnels;
+        }
+    }
+
+    private class SegmentCursor {
+        private Segment segment;
+        private int order;
+        private long minDate;
+        private LogEntity[] rows;
+        private int position;
+
+        public SegmentCursor(Segment segment, int order) {
+            this.segment = segment;
+            this.order = order;
+            this.minDate = segment.getMinDate();
+        }
+
+        public boolean open(Predicate<LogEntity> filter) {
+            rows = segment.getLogEntities().stream()
+                    .filter(filter)
+                    .sorted(Comparator.comparing(LogEntity::getDate))
+                    .toArray(LogEntity[]::new);
+            return rows.length > 0;
+        }
+
+        public LogEntity current() {
+            return rows[position];
+        }
+
+        public long currentTime() {
+            return rows[position].getDate().getTime();
+        }
+
+        public boolean advance() {
+            rows[position] = null;
+            return ++position < rows.length;
+        }
+    }
+
     private abstract class Command {
         protected LogEntity logEntity;
 
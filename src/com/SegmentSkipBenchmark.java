@@ -0,0 +1,80 @@
+package com;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Times selective lookups for one rare ip over synthetic, time-ordered rows with segment skipping on
+ * and off. The row count is the first argument (default 2 000 000); 100 000 000 rows need a heap of
+ * roughly 16 GB.
+ */
+public class SegmentSkipBenchmark {
+    private static final String RARE_IP = "10.255.255.1";
+    private static final String[] EVENTS = {"LOGIN", "DOWNLOAD_PLUGIN", "WRITE_MESSAGE", "SOLVE_TASK", "DONE_TASK"};
+    private static final String[] STATUSES = {"OK", "OK", "OK", "FAILED", "ERROR"};
+    private static final int RUNS = 5;
+
+    public static void main(String[] args) throws IOException {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        Path emptyDir = Files.createTempDirectory("logs");
+        LogParser logParser = new LogParser(emptyDir);
+        Files.delete(emptyDir);
+
+        long start = System.nanoTime();
+        generate(logParser, rows);
+        System.out.printf("generated %d rows in %d ms%n", rows, (System.nanoTime() - start) / 1_000_000);
+
+        for (boolean skipping : new boolean[]{false, true}) {
+            logParser.setSegmentSkipping(skipping);
+            System.out.println("segment skipping " + (skipping ? "on" : "off") + ":");
+            time(logParser, "getUsersForIP", () -> logParser.getUsersForIP(RARE_IP, null, null));
+            time(logParser, "getEventsForIP", () -> logParser.getEventsForIP(RARE_IP, null, null));
+            time(logParser, "execute", () -> logParser.execute("get user for ip = \"" + RARE_IP + "\""));
+        }
+    }
+
+    private static void generate(LogParser logParser, int rows) {
+        Random random = new Random(42);
+        DateFormat dateFormat = new SimpleDateFormat("d.M.yyyy H:m:s");
+        long time = new Date(0).getTime() + 40L * 365 * 24 * 3600 * 1000;
+        for (int i = 0; i < rows; i++) {
+            time += 1000;
+            String ip = i % (rows / 4 + 1) == 17 ? RARE_IP
+                    : "192.168." + random.nextInt(200) + "." + random.nextInt(250);
+            String user = "user" + random.nextInt(10_000);
+            String event = EVENTS[random.nextInt(EVENTS.length)];
+            if (event.endsWith("_TASK")) {
+                event += " " + random.nextInt(50);
+            }
+            String status = STATUSES[random.nextInt(STATUSES.length)];
+            logParser.addLogLine(ip + "\t" + user + "\t" + dateFormat.format(new Date(time)) + "\t" + event + "\t" + status);
+        }
+    }
+
+    private static void time(LogParser logParser, String name, Query query) {
+        query.run();
+        long skipped = logParser.getSkippedSegments();
+        long scanned = logParser.getScannedSegments();
+        long total = 0;
+        Set<?> result = null;
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            result = query.run();
+            total += System.nanoTime() - start;
+        }
+        skipped = logParser.getSkippedSegments() - skipped;
+        scanned = logParser.getScannedSegments() - scanned;
+        System.out.printf("  %-15s %8.2f ms  skipped %5.1f%% of segments  (%d results)%n",
+                name, total / 1e6 / RUNS, 100.0 * skipped / (skipped + scanned), result.size());
+    }
+
+    private interface Query {
+        Set<?> run();
+    }
+}
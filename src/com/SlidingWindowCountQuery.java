@@ -0,0 +1,98 @@
+package com;
+
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Standing query that counts matching log entries per key (ip, user, event, status or task) over a
+ * sliding time window, e.g. "count of ERROR per ip over the last 5 minutes". The window is driven by the
+ * latest date seen, so entries are evicted as log time advances. Listeners are told when a key's count
+ * rises above the threshold, and again only after it has dropped back to the threshold or below.
+ * Listeners are called outside the query's lock.
+ */
+public class SlidingWindowCountQuery extends GroupingStandingQuery {
+    public interface Listener {
+        void onThresholdExceeded(Object key, int count, Date date);
+    }
+
+    private long windowMillis;
+    private int threshold;
+    private List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private PriorityQueue<WindowEntry> window = new PriorityQueue<>(Comparator.comparingLong(e -> e.time));
+    private Map<Object, int[]> counts = new HashMap<>();
+    private Set<Object> alerted = new HashSet<>();
+    private long now = Long.MIN_VALUE;
+
+    public SlidingWindowCountQuery(String field, Event event, Status status, long windowMillis, int threshold) {
+        super(field, event, status);
+        if (windowMillis <= 0) {
+            throw new IllegalArgumentException("windowMillis must be positive: " + windowMillis);
+        }
+        this.windowMillis = windowMillis;
+        this.threshold = threshold;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void onLogEntry(String ip, String user, Date date, Event event, int eventAdditionalParameter, Status status) {
+        Object key;
+        int count;
+        synchronized (this) {
+            if (date == null) {
+                return;
+            }
+            now = Math.max(now, date.getTime());
+            evict();
+            if (date.getTime() <= now - windowMillis) {
+                return;
+            }
+            key = keyOf(ip, user, event, eventAdditionalParameter, status);
+            if (key == null) {
+                return;
+            }
+            window.add(new WindowEntry(date.getTime(), key));
+            count = ++counts.computeIfAbsent(key, k -> new int[1])[0];
+            if (count <= threshold || !alerted.add(key)) {
+                return;
+            }
+        }
+        for (Listener listener : listeners) {
+            listener.onThresholdExceeded(key, count, date);
+        }
+    }
+
+    public synchronized Map<Object, Integer> getCounts() {
+        Map<Object, Integer> result = new HashMap<>();
+        for (Map.Entry<Object, int[]> entry : counts.entrySet()) {
+            result.put(entry.getKey(), entry.getValue()[0]);
+        }
+        return result;
+    }
+
+    private void evict() {
+        while (!window.isEmpty() && window.peek().time <= now - windowMillis) {
+            Object key = window.poll().key;
+            int[] count = counts.get(key);
+            if (--count[0] == 0) {
+                counts.remove(key);
+            }
+            if (count[0] <= threshold) {
+                alerted.remove(key);
+            }
+        }
+    }
+
+    private static class WindowEntry {
+        private long time;
+        private Object key;
+
+        public WindowEntry(long time, Object key) {
+            this.time = time;
+            this.key = key;
+        }
+    }
+}
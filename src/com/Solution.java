@@ -13,6 +13,9 @@ public class Solution {
         System.out.println(logParser.execute("get date"));
         System.out.println(logParser.execute("get event"));
         System.out.println(logParser.execute("get status"));
+        System.out.println(logParser.execute("get top 20 ip for status = \"FAILED\""));
+        System.out.println(logParser.execute("get approx top 20 ip for status = \"FAILED\""));
+        System.out.println("segment skip rate: " + logParser.getSegmentSkipRate());
       //  System.out.println(logParser.readAdditionalParameter("SOLVE_TASK 18"));
 //     System.out.println(logParser.getIPsForUser(null, new Date()));
     }
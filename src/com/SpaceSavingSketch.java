@@ -0,0 +1,97 @@
+package com;
+
+import java.util.*;
+
+/**
+ * Space-Saving heavy-hitter sketch. Keeps at most {@code capacity} counters no matter how many distinct
+ * keys are offered; a key that is evicted and comes back inherits the smallest count as its error, so
+ * reported counts overestimate the true count by at most {@link #getError(Object)}.
+ */
+public class SpaceSavingSketch<K> {
+    private int capacity;
+    private Map<K, long[]> counters = new HashMap<>();
+    private TreeMap<Long, Set<K>> buckets = new TreeMap<>();
+
+    public SpaceSavingSketch(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    public void offer(K key) {
+        long[] counter = counters.get(key);
+        if (counter != null) {
+            removeFromBucket(key, counter[0]);
+            counter[0]++;
+        } else if (counters.size() < capacity) {
+            counter = new long[]{1, 0};
+            counters.put(key, counter);
+        } else {
+            Map.Entry<Long, Set<K>> smallest = buckets.firstEntry();
+            K evicted = smallest.getValue().iterator().next();
+            removeFromBucket(evicted, smallest.getKey());
+            counters.remove(evicted);
+            counter = new long[]{smallest.getKey() + 1, smallest.getKey()};
+            counters.put(key, counter);
+        }
+        buckets.computeIfAbsent(counter[0], c -> new LinkedHashSet<>()).add(key);
+    }
+
+    public long getCount(K key) {
+        long[] counter = counters.get(key);
+        return counter == null ? 0 : counter[0];
+    }
+
+    public long getError(K key) {
+        long[] counter = counters.get(key);
+        return counter == null ? 0 : counter[1];
+    }
+
+    /**
+     * Returns the count of a key that is certain to have been offered: its counter minus its error.
+     */
+    public long getGuaranteedCount(K key) {
+        long[] counter = counters.get(key);
+        return counter == null ? 0 : counter[0] - counter[1];
+    }
+
+    /**
+     * Returns up to k keys with their counters, which are upper bounds of the true counts, ordered from
+     * the largest counter down.
+     */
+    public Map<K, Long> getTop(int k) {
+        Map<K, Long> top = new LinkedHashMap<>();
+        for (Map.Entry<Long, Set<K>> bucket : buckets.descendingMap().entrySet()) {
+            for (K key : bucket.getValue()) {
+                if (top.size() >= k) {
+                    return top;
+                }
+                top.put(key, bucket.getKey());
+            }
+        }
+        return top;
+    }
+
+    /**
+     * Returns up to k keys with their guaranteed counts, which are lower bounds of the true counts,
+     * ordered from the largest guaranteed count down.
+     */
+    public Map<K, Long> getGuaranteedTop(int k) {
+        List<Map.Entry<K, long[]>> entries = new ArrayList<>(counters.entrySet());
+        entries.sort(Comparator.comparingLong((Map.Entry<K, long[]> e) -> e.getValue()[0] - e.getValue()[1]).reversed());
+        Map<K, Long> top = new LinkedHashMap<>();
+        for (Map.Entry<K, long[]> entry : entries.subList(0, Math.min(k, entries.size()))) {
+            top.put(entry.getKey(), entry.getValue()[0] - entry.getValue()[1]);
+        }
+        return top;
+    }
+
+    private void removeFromBucket(K key, long count) {
+        Set<K> bucket = buckets.get(count);
+        bucket.remove(key);
+        if (bucket.isEmpty()) {
+            buckets.remove(count);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com;
+
+/**
+ * SOLVE_TASK to DONE_TASK conversion for one task, built from a walk over the log in time order. A user's
+ * first SOLVE_TASK starts a funnel for the (user, task) pair; the next DONE_TASK by that user converts it
+ * and the gap between the two is its time to done. A DONE_TASK with no open funnel only counts as a
+ * completion, and a later SOLVE_TASK after a conversion starts a new funnel.
+ * <p>
+ * Times to done are kept in a log-scale histogram with 16 buckets per power of two, so percentiles are
+ * within about 6% of the exact value and memory per task is fixed.
+ */
+public class TaskFunnel {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private int task;
+    private int attempts;
+    private int completions;
+    private int started;
+    private int converted;
+    private long minTimeToDone = Long.MAX_VALUE;
+    private long maxTimeToDone = Long.MIN_VALUE;
+    private int[] histogram = new int[SUB_BUCKETS * (64 - SUB_BUCKET_BITS + 1)];
+
+    TaskFunnel(int task) {
+        this.task = task;
+    }
+
+    void recordAttempt() {
+        attempts++;
+    }
+
+    void recordCompletion() {
+        completions++;
+    }
+
+    void recordStart() {
+        started++;
+    }
+
+    void recordConversion(long timeToDone) {
+        converted++;
+        minTimeToDone = Math.min(minTimeToDone, timeToDone);
+        maxTimeToDone = Math.max(maxTimeToDone, timeToDone);
+        histogram[bucketOf(timeToDone)]++;
+    }
+
+    public int getTask() {
+        return task;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public int getCompletions() {
+        return completions;
+    }
+
+    public int getStarted() {
+        return started;
+    }
+
+    public int getConverted() {
+        return converted;
+    }
+
+    public double getConversionRate() {
+        return started == 0 ? 0 : (double) converted / started;
+    }
+
+    /**
+     * Nearest-rank percentile of time to done in milliseconds, or -1 if no funnel converted.
+     */
+    public long getTimeToDonePercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("percentile must be between 0 and 100: " + percentile);
+        }
+        if (converted == 0) {
+            return -1;
+        }
+        int rank = Math.max((int) Math.ceil(percentile / 100 * converted), 1);
+        int seen = 0;
+        for (int bucket = 0; bucket < histogram.length; bucket++) {
+            seen += histogram[bucket];
+            if (seen >= rank) {
+                return Math.max(minTimeToDone, Math.min(maxTimeToDone, valueOf(bucket)));
+            }
+        }
+        return maxTimeToDone;
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) Math.max(value, 0);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long valueOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+        long lower = (long) (SUB_BUCKETS + (bucket - SUB_BUCKETS) % SUB_BUCKETS) << shift;
+        return lower + ((1L << shift) >>> 1);
+    }
+
+    @Override
+    public String toString() {
+        return "TaskFunnel{task=" + task
+                + ", attempts=" + attempts
+                + ", completions=" + completions
+                + ", conversionRate=" + getConversionRate()
+                + ", p50=" + getTimeToDonePercentile(50)
+                + ", p90=" + getTimeToDonePercentile(90)
+                + ", p99=" + getTimeToDonePercentile(99)
+                + "}";
+    }
+}
@@ -0,0 +1,12 @@
+package com.query;
+
+import com.TaskFunnel;
+
+import java.util.Date;
+import java.util.Map;
+
+public interface FunnelQuery {
+    Map<Integer, TaskFunnel> getTaskFunnels(Date after, Date before);
+
+    TaskFunnel getTaskFunnel(int task, Date after, Date before);
+}
@@ -0,0 +1,10 @@
+package com.query;
+
+import com.Event;
+import com.Status;
+
+import java.util.Date;
+
+public interface StandingQuery {
+    void onLogEntry(String ip, String user, Date date, Event event, int eventAdditionalParameter, Status status);
+}
@@ -0,0 +1,30 @@
+package com.query;
+
+import com.Event;
+import com.Status;
+
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * Most frequent ips, users or tasks among the entries with the given event and status, ordered from the
+ * most to the least frequent. A {@code null} event or status matches any value.
+ * <p>
+ * The exact variants keep one counter per distinct key. The approximate variants use a Space-Saving
+ * sketch with {@code capacity} counters, so memory stays bounded however many distinct keys there are.
+ * They report guaranteed counts, which are lower bounds of the true counts, and rank keys by them; when
+ * capacity is small relative to the number of distinct keys these bounds can be far below the truth.
+ */
+public interface TopKQuery {
+    Map<String, Integer> getTopIPs(int k, Event event, Status status, Date after, Date before);
+
+    Map<String, Integer> getTopUsers(int k, Event event, Status status, Date after, Date before);
+
+    Map<Integer, Integer> getTopTasks(int k, Event event, Status status, Date after, Date before);
+
+    Map<String, Integer> getApproximateTopIPs(int k, int capacity, Event event, Status status, Date after, Date before);
+
+    Map<String, Integer> getApproximateTopUsers(int k, int capacity, Event event, Status status, Date after, Date before);
+
+    Map<Integer, Integer> getApproximateTopTasks(int k, int capacity, Event event, Status status, Date after, Date before);
+}